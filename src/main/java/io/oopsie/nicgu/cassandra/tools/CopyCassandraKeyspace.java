@@ -1,14 +1,21 @@
 package io.oopsie.nicgu.cassandra.tools;
 
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.CodecRegistry;
 import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.ConsistencyLevel;
 import com.datastax.driver.core.DataType;
 import com.datastax.driver.core.ParseUtils;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.Token;
 import com.datastax.driver.core.TupleType;
 import com.datastax.driver.core.TupleValue;
 import com.datastax.driver.core.UDTValue;
@@ -16,12 +23,22 @@ import com.datastax.driver.core.UserType;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
@@ -39,6 +56,7 @@ public class CopyCassandraKeyspace {
      * Mandatory parameters: source=source-keyspace target=target-keyspace
      * <p>
      * Optional parameters: [sourceHost=host[:port]] [targetHost=host[:port]] [sourceCreds=username::password] [targetCreds=username::password]
+     * [counterProgress=file] [verifyCounters=true]
      * @param args the mandatoru and optional params mentioned in metod javadocs.
      */
     public static void main(String[] args) {
@@ -98,6 +116,11 @@ public class CopyCassandraKeyspace {
             run = true;
         }
         
+        String counterProgressArg = argSet.stream().filter(arg -> arg.startsWith("counterProgress=")).findAny().orElse("");
+        counterProgressArg = counterProgressArg.replace("counterProgress=", "");
+        
+        boolean verifyCounters = argSet.contains("verifyCounters=true");
+        
         if(run) {
             CopyCassandraKeyspace cck = new CopyCassandraKeyspace(
                     sourceHost,
@@ -111,15 +134,29 @@ public class CopyCassandraKeyspace {
                     targetUser,
                     targetPass
             );
+            if(!counterProgressArg.isEmpty()) {
+                cck.setCounterProgressFile(counterProgressArg);
+            }
+            int status = 0;
             try {
                 cck.connect();
                 cck.copy();
+                if(cck.getCounterFailures() > 0) {
+                    status = 1;
+                }
+                if(verifyCounters && !cck.verifyCounterTables()) {
+                    status = 1;
+                }
             } catch(Exception e) {
                 e.printStackTrace();
                 System.out.println(e.getMessage());
+                status = 1;
             } finally {
                 cck.close();
             }
+            if(status != 0) {
+                System.exit(status);
+            }
         }
     }
     
@@ -142,6 +179,10 @@ public class CopyCassandraKeyspace {
     
     private Map<String, PreparedStatement> copyPreps = new HashMap();
     
+    private String counterProgressFile;
+    private final Properties counterProgress = new Properties();
+    private int counterFailures;
+    
     /**
      * Create a new CopyCassandraKeyspace instance capable of copying data from source to target.
      * 
@@ -218,6 +259,21 @@ public class CopyCassandraKeyspace {
         
     }
     
+    /**
+     * Sets the file used to track which counter partitions have been applied to the target
+     * keyspace. A rerun with the same file skips the recorded partitions. Batches applied after
+     * the last write of the file, or whose write timed out, may be applied a second time, so
+     * verify the counter totals after an interrupted or failed copy. The file is deleted once a
+     * copy finishes without failed counter partitions. Defaults to
+     * &lt;target&gt;-counter-progress.properties in the working directory.
+     * 
+     * @param counterProgressFile path to the counter progress file
+     */
+    public void setCounterProgressFile(String counterProgressFile) {
+        this.counterProgressFile = counterProgressFile == null || counterProgressFile.trim().isEmpty()
+                ? null : counterProgressFile.trim();
+    }
+    
     /**
      * Connects the source and the target Cassandra cluster and session objects.
      * Call this method before calling {@link #copy()}.
@@ -292,7 +348,12 @@ public class CopyCassandraKeyspace {
      * @see #connect() 
      */
     public void copy() {
+        counterFailures = 0;
+        loadCounterProgress();
         copyKeyspace();
+        if(counterFailures == 0) {
+            deleteCounterProgress();
+        }
     }
     
     /**
@@ -315,9 +376,16 @@ public class CopyCassandraKeyspace {
             }
         });
 
-        cqls.forEach(cql -> { 
-            targetSession.execute(cql);
-        });
+        if(!counterProgress.isEmpty() && targetCluster.getMetadata().getKeyspace(target) != null) {
+            // A previous run already created the target keyspace, only the data is copied again.
+            System.out.println("Resuming copy into existing keyspace '" + target + "' using " + getCounterProgressFile());
+        } else {
+            // Progress recorded for a keyspace that no longer exists is stale.
+            counterProgress.clear();
+            cqls.forEach(cql -> { 
+                targetSession.execute(cql);
+            });
+        }
         copyTables();
     }
     
@@ -326,15 +394,23 @@ public class CopyCassandraKeyspace {
      */
     private void copyTables() {
         
-        String tableNameCql = "SELECT table_name FROM system_schema.tables WHERE keyspace_name='" + source + "'";
-        Set<String> tables = sourceSession.execute(tableNameCql).all().stream()
-                .map(row -> row.getString("table_name")).collect(Collectors.toSet());
-        
-        tables.forEach(table -> {
+        getSourceTables().forEach(table -> {
             copyTableData(table);
         });
     }
     
+    /**
+     * Returns the names of all tables in the source keyspace.
+     * 
+     * @return the source table names.
+     */
+    private Set<String> getSourceTables() {
+        
+        String tableNameCql = "SELECT table_name FROM system_schema.tables WHERE keyspace_name='" + source + "'";
+        return sourceSession.execute(tableNameCql).all().stream()
+                .map(row -> row.getString("table_name")).collect(Collectors.toSet());
+    }
+    
     /**
      * Selects data from passed in table in the source keyspace and isnerts hte data
      * into a table with same name in the target keyspace.
@@ -343,6 +419,11 @@ public class CopyCassandraKeyspace {
      */
     private void copyTableData(String table) {
         
+        if(isCounterTable(sourceCluster.getMetadata().getKeyspace(source).getTable(table))) {
+            copyCounterTableData(table);
+            return;
+        }
+        
         List<String> setColParams = new ArrayList();
         List<ColumnMetadata> setCols = new ArrayList();
         List<String> whereColParams = new ArrayList();
@@ -357,11 +438,7 @@ public class CopyCassandraKeyspace {
 
         cols.forEach(cmd -> {
             if(!whereCols.contains(cmd)) {
-                if(cmd.getType().getName().equals(DataType.Name.COUNTER)) {
-                    setColParams.add(ParseUtils.doubleQuote(cmd.getName()) + "=" + ParseUtils.doubleQuote(cmd.getName()) + "+?");
-                } else {
-                    setColParams.add(ParseUtils.doubleQuote(cmd.getName()) + "=?");
-                }
+                setColParams.add(ParseUtils.doubleQuote(cmd.getName()) + "=?");
                 setCols.add(cmd);
             }
         });
@@ -436,6 +513,389 @@ public class CopyCassandraKeyspace {
         }
     }
     
+    /**
+     * Copies the data of a counter table. Counter updates add to the current target value
+     * and can't safely be repeated, so rows are grouped per partition into COUNTER batches
+     * and applied partitions are recorded in the counter progress file. Partitions
+     * recorded there are skipped when an interrupted copy is rerun.
+     * 
+     * @param table the name of the counter table to copy data from
+     */
+    private void copyCounterTableData(String table) {
+        
+        TableMetadata tableMeta = sourceCluster.getMetadata().getKeyspace(source).getTable(table);
+        List<ColumnMetadata> partitionCols = tableMeta.getPartitionKey();
+        List<ColumnMetadata> keyCols = tableMeta.getPrimaryKey();
+        List<ColumnMetadata> staticCols = getCounterColumns(tableMeta).stream()
+                .filter(c -> c.isStatic()).collect(Collectors.toList());
+        List<ColumnMetadata> regularCols = getCounterColumns(tableMeta).stream()
+                .filter(c -> !c.isStatic()).collect(Collectors.toList());
+        
+        List<ColumnMetadata> selectCols = new ArrayList(keyCols);
+        selectCols.addAll(staticCols);
+        selectCols.addAll(regularCols);
+        
+        // Selected columns: token, primary key columns, static counters, regular counters.
+        String fromCql = String.join("",
+                "SELECT token(",
+                joinColumnNames(partitionCols),
+                "),",
+                joinColumnNames(selectCols),
+                " FROM ",
+                source,
+                ".",
+                table);
+        
+        PreparedStatement staticStmnt = staticCols.isEmpty() ? null : prepareCounterUpdate(table, staticCols, partitionCols);
+        PreparedStatement regularStmnt = regularCols.isEmpty() ? null : prepareCounterUpdate(table, regularCols, keyCols);
+        int staticFrom = 1 + keyCols.size();
+        int regularFrom = staticFrom + staticCols.size();
+        
+        CounterProgress<Token> progress = getCounterProgress(table);
+        CounterTableCopy<Token, BoundStatement> copy = new CounterTableCopy(table, progress,
+                updates -> {
+                    BatchStatement batch = new BatchStatement(BatchStatement.Type.COUNTER);
+                    batch.addAll(updates);
+                    return targetSession.executeAsync(batch);
+                },
+                () -> saveCounterProgress(table, progress));
+        
+        try {
+            // Rows are returned in token order, so all rows of a partition are adjacent.
+            for (Row row : sourceSession.execute(fromCql)) {
+                List<Object> key = new ArrayList();
+                for (int i = 0; i < partitionCols.size(); i++) {
+                    key.add(row.getObject(i + 1));
+                }
+                copy.row(row.getToken(0), key,
+                        () -> bindCounterUpdate(staticStmnt, row, staticFrom, staticCols.size(), partitionCols.size()),
+                        () -> bindCounterUpdate(regularStmnt, row, regularFrom, regularCols.size(), keyCols.size()));
+            }
+            copy.finish();
+        } finally {
+            copy.close();
+        }
+        
+        if(copy.getFailures() > 0) {
+            counterFailures += copy.getFailures();
+            System.out.println(copy.getFailures() + " counter partition(s) of table '" + table
+                    + "' could not be copied. Rerun to copy the remaining partitions and verify the counter totals.");
+        }
+    }
+    
+    /**
+     * Prepares an update adding to the passed in counter columns of the target table.
+     * 
+     * @param table the name of the counter table
+     * @param counterCols the counter columns to update
+     * @param whereCols the key columns identifying the updated row or partition
+     * @return the prepared update.
+     */
+    private PreparedStatement prepareCounterUpdate(String table, List<ColumnMetadata> counterCols, List<ColumnMetadata> whereCols) {
+        
+        String setParams = String.join(",", counterCols.stream()
+                .map(c -> ParseUtils.doubleQuote(c.getName()) + "=" + ParseUtils.doubleQuote(c.getName()) + "+?")
+                .collect(Collectors.toList()));
+        String whereParams = String.join(" AND ", whereCols.stream()
+                .map(c -> ParseUtils.doubleQuote(c.getName()) + "=?")
+                .collect(Collectors.toList()));
+        String cql = String.join("",
+                "UPDATE ",
+                target,
+                ".",
+                table,
+                " SET ",
+                setParams,
+                " WHERE ",
+                whereParams);
+        
+        PreparedStatement pStmnt = copyPreps.get(cql);
+        if(pStmnt == null) {
+            pStmnt = targetSession.prepare(cql);
+            copyPreps.put(cql, pStmnt);
+        }
+        return pStmnt;
+    }
+    
+    /**
+     * Binds counter values and key columns of a source row to a counter update statement.
+     * The key columns are the first keyCount primary key columns of the row. Counter columns
+     * that are null in the source are left unset.
+     * 
+     * @param pStmnt the prepared counter update, null if the table has no such counters
+     * @param row the source row
+     * @param counterFrom the index of the first counter column in the row
+     * @param counterCount the number of counter columns
+     * @param keyCount the number of key columns
+     * @return the bound update or null if there is nothing to update.
+     */
+    private BoundStatement bindCounterUpdate(PreparedStatement pStmnt, Row row, int counterFrom, int counterCount, int keyCount) {
+        
+        if(pStmnt == null) {
+            return null;
+        }
+        
+        Object[] values = new Object[counterCount + keyCount];
+        boolean hasValue = false;
+        for (int i = 0; i < counterCount; i++) {
+            if(!row.isNull(counterFrom + i)) {
+                values[i] = row.getLong(counterFrom + i);
+                hasValue = true;
+            }
+        }
+        for (int i = 0; i < keyCount; i++) {
+            // A partition with only static values is returned with null clustering columns.
+            if(row.isNull(1 + i)) {
+                return null;
+            }
+            values[counterCount + i] = convertUDTValueIfNecessary(row.getObject(1 + i));
+        }
+        if(!hasValue) {
+            return null;
+        }
+        
+        BoundStatement bound = pStmnt.bind(values);
+        for (int i = 0; i < counterCount; i++) {
+            if(values[i] == null) {
+                bound.unset(i);
+            }
+        }
+        return bound;
+    }
+    
+    /**
+     * Returns the number of counter partitions that could not be copied by the last call to {@link #copy()}.
+     * 
+     * @return the number of failed counter partitions.
+     */
+    public int getCounterFailures() {
+        return counterFailures;
+    }
+    
+    /**
+     * Compares the total of every counter column in the source keyspace with the
+     * total of the same column in the target keyspace. Prior to calling this method
+     * {@link #connect()} must be called.
+     * 
+     * @return true if all counter totals match.
+     */
+    public boolean verifyCounterTables() {
+        
+        boolean matching = true;
+        for (String table : getSourceTables()) {
+            TableMetadata tableMeta = sourceCluster.getMetadata().getKeyspace(source).getTable(table);
+            if(!isCounterTable(tableMeta)) {
+                continue;
+            }
+            List<ColumnMetadata> counterCols = getCounterColumns(tableMeta);
+            long[] sourceTotals = sumCounterColumns(sourceSession, source, table, tableMeta.getPartitionKey(), counterCols);
+            long[] targetTotals = sumCounterColumns(targetSession, target, table, tableMeta.getPartitionKey(), counterCols);
+            for (int i = 0; i < counterCols.size(); i++) {
+                if(sourceTotals[i] != targetTotals[i]) {
+                    System.out.println("Counter totals differ for " + table + "." + counterCols.get(i).getName()
+                            + ": source=" + sourceTotals[i] + ", target=" + targetTotals[i]);
+                    matching = false;
+                }
+            }
+        }
+        if(matching) {
+            System.out.println("All counter totals match.");
+        }
+        return matching;
+    }
+    
+    /**
+     * Sums the values of the passed in counter columns over all rows of a table. Static counters
+     * are summed once per partition. The rows are read at QUORUM, since counter replicas are
+     * updated asynchronously.
+     * 
+     * @param session the session to query
+     * @param keyspace the keyspace of the table
+     * @param table the name of the table
+     * @param partitionCols the partition key columns of the table
+     * @param counterCols the counter columns to sum
+     * @return the totals in the same order as counterCols.
+     */
+    private long[] sumCounterColumns(Session session, String keyspace, String table,
+            List<ColumnMetadata> partitionCols, List<ColumnMetadata> counterCols) {
+        
+        List<ColumnMetadata> staticCols = counterCols.stream().filter(c -> c.isStatic()).collect(Collectors.toList());
+        List<ColumnMetadata> regularCols = counterCols.stream().filter(c -> !c.isStatic()).collect(Collectors.toList());
+        
+        Map<ColumnMetadata, Long> totals = new HashMap();
+        if(!staticCols.isEmpty()) {
+            String cql = String.join("", "SELECT DISTINCT ", joinColumnNames(partitionCols), ",",
+                    joinColumnNames(staticCols), " FROM ", keyspace, ".", table);
+            sumRows(session, cql, partitionCols.size(), staticCols, totals);
+        }
+        if(!regularCols.isEmpty()) {
+            String cql = String.join("", "SELECT ", joinColumnNames(regularCols), " FROM ", keyspace, ".", table);
+            sumRows(session, cql, 0, regularCols, totals);
+        }
+        
+        long[] result = new long[counterCols.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = totals.getOrDefault(counterCols.get(i), 0L);
+        }
+        return result;
+    }
+    
+    /**
+     * Adds the counter values of all rows returned by a query to the passed in totals.
+     * 
+     * @param session the session to query
+     * @param cql the query
+     * @param from the index of the first counter column in the rows
+     * @param cols the counter columns, in the order they are selected
+     * @param totals the totals per counter column
+     */
+    private void sumRows(Session session, String cql, int from, List<ColumnMetadata> cols, Map<ColumnMetadata, Long> totals) {
+        
+        Statement stmnt = new SimpleStatement(cql).setConsistencyLevel(ConsistencyLevel.QUORUM);
+        for (Row row : session.execute(stmnt)) {
+            for (int i = 0; i < cols.size(); i++) {
+                if(!row.isNull(from + i)) {
+                    totals.merge(cols.get(i), row.getLong(from + i), Long::sum);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Checks if the passed in table is a counter table.
+     * 
+     * @param tableMeta the table metadata
+     * @return true if the table has counter columns.
+     */
+    private boolean isCounterTable(TableMetadata tableMeta) {
+        return !getCounterColumns(tableMeta).isEmpty();
+    }
+    
+    /**
+     * Returns the counter columns of the passed in table.
+     * 
+     * @param tableMeta the table metadata
+     * @return the counter columns of the table.
+     */
+    private List<ColumnMetadata> getCounterColumns(TableMetadata tableMeta) {
+        return tableMeta.getColumns().stream()
+                .filter(c -> c.getType().getName().equals(DataType.Name.COUNTER))
+                .collect(Collectors.toList());
+    }
+    
+    /**
+     * Joins the quoted names of the passed in columns separated by commas.
+     * 
+     * @param cols the columns
+     * @return the comma separated column names.
+     */
+    private String joinColumnNames(List<ColumnMetadata> cols) {
+        return String.join(",", cols.stream().map(c -> ParseUtils.doubleQuote(c.getName())).collect(Collectors.toList()));
+    }
+    
+    /**
+     * Returns the file tracking applied counter partitions.
+     * 
+     * @return the counter progress file.
+     */
+    private String getCounterProgressFile() {
+        return counterProgressFile != null ? counterProgressFile : target + "-counter-progress.properties";
+    }
+    
+    /**
+     * Loads the counter progress file if it exists and checks that the progress of every
+     * table can be parsed before anything is copied.
+     */
+    private void loadCounterProgress() {
+        
+        counterProgress.clear();
+        File file = new File(getCounterProgressFile());
+        if(file.isFile()) {
+            try(InputStream in = new FileInputStream(file)) {
+                counterProgress.load(in);
+            } catch(IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        
+        // Table names can't contain dots, so the table is the part after the keyspace prefix.
+        counterProgress.stringPropertyNames().stream().filter(k -> k.startsWith(target + "."))
+                .map(k -> k.substring(target.length() + 1).split("\\.")[0])
+                .distinct().forEach(table -> getCounterProgress(table));
+    }
+    
+    /**
+     * Deletes the counter progress file once all counter tables have been copied, so a later
+     * copy into the same keyspace starts over instead of skipping every partition.
+     */
+    private void deleteCounterProgress() {
+        
+        counterProgress.clear();
+        try {
+            Files.deleteIfExists(Paths.get(getCounterProgressFile()));
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    /**
+     * Returns the applied partitions of a counter table as recorded in the counter progress file.
+     * 
+     * @param table the name of the counter table
+     * @return the applied partitions of the table.
+     * @throws IllegalStateException if the recorded progress can't be parsed.
+     */
+    private CounterProgress<Token> getCounterProgress(String table) {
+        
+        String prefix = target + "." + table;
+        String ranges = counterProgress.getProperty(prefix + ".applied", "");
+        Map<String, String> partial = new HashMap();
+        counterProgress.stringPropertyNames().stream().filter(k -> k.startsWith(prefix + ".partial.")).forEach(k -> {
+            partial.put(k.substring((prefix + ".partial.").length()), counterProgress.getProperty(k));
+        });
+        try {
+            return CounterProgress.parse(ranges, partial, sourceCluster.getMetadata()::newToken);
+        } catch(IllegalArgumentException e) {
+            throw new IllegalStateException("Can't read the progress of table '" + table + "' from "
+                    + getCounterProgressFile() + ": " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Records the applied partitions of a counter table and writes the counter progress file.
+     * The file is written to a temporary file first and then moved in place,
+     * so an interrupted write never leaves a truncated progress file.
+     * 
+     * @param table the name of the counter table
+     * @param progress the applied partitions of the table
+     */
+    private void saveCounterProgress(String table, CounterProgress<Token> progress) {
+        
+        String prefix = target + "." + table;
+        counterProgress.setProperty(prefix + ".applied", progress.formatRanges());
+        counterProgress.stringPropertyNames().stream().filter(k -> k.startsWith(prefix + ".partial."))
+                .forEach(k -> counterProgress.remove(k));
+        progress.getPartial().forEach((token, applied) -> {
+            counterProgress.setProperty(prefix + ".partial." + token, String.valueOf(applied));
+        });
+        
+        Path file = Paths.get(getCounterProgressFile()).toAbsolutePath();
+        try {
+            Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try {
+                try(FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+                    counterProgress.store(out, "Applied counter partitions");
+                    out.getFD().sync();
+                }
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
     /**
      * Converts a source UDTValue to the target equivalent. If sourceVal is null or not an
      * instance of UDTValue then this method will just return the value as is.
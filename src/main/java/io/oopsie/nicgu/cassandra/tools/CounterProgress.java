@@ -0,0 +1,189 @@
+package io.oopsie.nicgu.cassandra.tools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Keeps track of the applied partitions of a counter table. Applied partitions are stored as
+ * inclusive token ranges of partitions that were applied one after another in scan order.
+ * Partitions split into several batches that were only partly applied are stored with the
+ * number of applied updates.
+ *
+ * @param <T> the token type
+ */
+class CounterProgress<T extends Comparable<T>> {
+
+    private final List<Range<T>> ranges = new ArrayList();
+    private final Map<T, Integer> partial = new HashMap();
+    private Range<T> open;
+    private int failures;
+    private boolean changed;
+
+    /**
+     * Parses the progress of a counter table as written by {@link #formatRanges()} and
+     * {@link #getPartial()}.
+     *
+     * @param <T> the token type
+     * @param ranges the applied ranges as start:end pairs separated by commas
+     * @param partial the number of applied updates of partly applied partitions, keyed by token
+     * @param tokenParser parses a token
+     * @return the parsed progress.
+     * @throws IllegalArgumentException if a range, token or count can't be parsed.
+     */
+    static <T extends Comparable<T>> CounterProgress<T> parse(String ranges, Map<String, String> partial,
+            Function<String, T> tokenParser) {
+
+        CounterProgress<T> progress = new CounterProgress();
+        for (String range : ranges.split(",")) {
+            if(range.isEmpty()) {
+                continue;
+            }
+            String[] bounds = range.split(":");
+            if(bounds.length != 2) {
+                throw new IllegalArgumentException("Invalid counter progress range '" + range + "'");
+            }
+            T start = parseToken(bounds[0], tokenParser);
+            T end = parseToken(bounds[1], tokenParser);
+            if(start.compareTo(end) > 0) {
+                throw new IllegalArgumentException("Invalid counter progress range '" + range + "'");
+            }
+            progress.ranges.add(new Range(start, end));
+        }
+        partial.forEach((token, applied) -> {
+            try {
+                progress.partial.put(parseToken(token, tokenParser), Integer.valueOf(applied));
+            } catch(NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid counter progress count '" + applied + "' for token " + token, e);
+            }
+        });
+        return progress;
+    }
+
+    private static <T> T parseToken(String token, Function<String, T> tokenParser) {
+        try {
+            return tokenParser.apply(token);
+        } catch(RuntimeException e) {
+            throw new IllegalArgumentException("Invalid counter progress token '" + token + "'", e);
+        }
+    }
+
+    /**
+     * Checks if the partition with the passed in token is covered by an applied range.
+     *
+     * @param token the partition token
+     * @return true if the partition has been applied.
+     */
+    boolean isApplied(T token) {
+        return ranges.stream().anyMatch(r -> r.start.compareTo(token) <= 0 && token.compareTo(r.end) <= 0);
+    }
+
+    /**
+     * Returns the number of applied updates of a partly applied partition.
+     *
+     * @param token the partition token
+     * @return the number of applied updates, 0 if none.
+     */
+    int getPartiallyApplied(T token) {
+        return partial.getOrDefault(token, 0);
+    }
+
+    /**
+     * Records a completely applied partition. The partition extends the current range
+     * unless the range was broken by a failed or partly applied partition.
+     *
+     * @param token the partition token
+     */
+    void applied(T token) {
+        partial.remove(token);
+        if(open == null) {
+            open = new Range(token, token);
+            ranges.add(open);
+        } else {
+            open.end = token;
+        }
+        changed = true;
+    }
+
+    /**
+     * Records the number of applied updates of a partition that is not completely applied.
+     *
+     * @param token the partition token
+     * @param applied the number of applied updates
+     */
+    void partiallyApplied(T token, int applied) {
+        partial.put(token, applied);
+        open = null;
+        changed = true;
+    }
+
+    /**
+     * Records a partition that failed to be applied.
+     */
+    void failed() {
+        open = null;
+        failures++;
+        changed = true;
+    }
+
+    int getFailures() {
+        return failures;
+    }
+
+    boolean isChanged() {
+        return changed;
+    }
+
+    /**
+     * Marks the progress as saved.
+     */
+    void saved() {
+        changed = false;
+    }
+
+    Map<T, Integer> getPartial() {
+        return partial;
+    }
+
+    /**
+     * Merges overlapping ranges and formats them as start:end pairs separated by commas.
+     *
+     * @return the formatted ranges.
+     */
+    String formatRanges() {
+
+        List<Range<T>> sorted = new ArrayList(ranges);
+        sorted.sort((r1, r2) -> r1.start.compareTo(r2.start));
+        List<String> merged = new ArrayList();
+        T start = null;
+        T end = null;
+        for (Range<T> range : sorted) {
+            if(start != null && range.start.compareTo(end) <= 0) {
+                end = range.end.compareTo(end) > 0 ? range.end : end;
+            } else {
+                if(start != null) {
+                    merged.add(start + ":" + end);
+                }
+                start = range.start;
+                end = range.end;
+            }
+        }
+        if(start != null) {
+            merged.add(start + ":" + end);
+        }
+        return String.join(",", merged);
+    }
+
+    private static class Range<T> {
+
+        private final T start;
+        private T end;
+
+        private Range(T start, T end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package io.oopsie.nicgu.cassandra.tools;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Copies the rows of one counter table, read in token order, as COUNTER batches grouped per
+ * partition. Applied partitions are recorded in a {@link CounterProgress} in scan order, so
+ * partitions recorded by a previous run are skipped and partly applied wide partitions are
+ * continued after their last recorded update.
+ *
+ * @param <T> the token type
+ * @param <U> the update type
+ */
+class CounterTableCopy<T extends Comparable<T>, U> {
+
+    /**
+     * Max number of counter updates put in one COUNTER batch. Larger partitions
+     * are split into several batches.
+     */
+    static final int BATCH_SIZE = 100;
+
+    /**
+     * Max number of counter batches executed asynchronously before waiting for them to complete.
+     */
+    static final int BATCHES_IN_FLIGHT = 32;
+
+    /**
+     * Max number of partitions, including partitions without updates, waiting to be recorded
+     * before the pending batches are executed.
+     */
+    static final int PARTITIONS_PENDING = 1000;
+
+    /**
+     * Number of applied chunks of a wide partition between saves of the progress.
+     */
+    static final int CHUNKS_PER_SAVE = 10;
+
+    /**
+     * Executes the updates of one partition as a single COUNTER batch.
+     *
+     * @param <U> the update type
+     */
+    interface BatchExecutor<U> {
+
+        /**
+         * Starts executing a batch.
+         *
+         * @param updates the updates of the batch, all belonging to the same partition
+         * @return a future completing when the batch has been applied.
+         */
+        Future<?> execute(List<U> updates);
+    }
+
+    private final String table;
+    private final CounterProgress<T> progress;
+    private final BatchExecutor<U> executor;
+    private final Runnable saver;
+
+    private final List<Partition<T, U>> pending = new ArrayList();
+    private int pendingBatches;
+    private Partition<T, U> partition;
+
+    /**
+     * Creates a copy of one counter table.
+     *
+     * @param table the name of the table, used in messages
+     * @param progress the applied partitions of the table
+     * @param executor executes the batches
+     * @param saver saves the progress
+     */
+    CounterTableCopy(String table, CounterProgress<T> progress, BatchExecutor<U> executor, Runnable saver) {
+        this.table = table;
+        this.progress = progress;
+        this.executor = executor;
+        this.saver = saver;
+    }
+
+    /**
+     * Adds a source row. The static update is only requested for the first row of a partition,
+     * since every row of a partition carries the same static values. Updates are only requested
+     * for partitions that still need to be applied.
+     *
+     * @param token the partition token
+     * @param key the partition key values
+     * @param staticUpdate supplies the update of the static counters, null if there is nothing to update
+     * @param update supplies the update of the regular counters, null if there is nothing to update
+     */
+    void row(T token, List<Object> key, Supplier<U> staticUpdate, Supplier<U> update) {
+
+        if(partition == null || !partition.isSamePartition(token, key)) {
+            if(partition != null) {
+                finishPartition();
+            }
+            partition = new Partition(token, key, progress.isApplied(token), progress.getPartiallyApplied(token));
+            if(!partition.alreadyApplied) {
+                add(staticUpdate.get());
+            }
+        }
+        if(!partition.alreadyApplied) {
+            add(update.get());
+        }
+    }
+
+    /**
+     * Applies the remaining partitions after the last row and saves the progress.
+     */
+    void finish() {
+
+        if(partition != null) {
+            finishPartition();
+            partition = null;
+        }
+        executeBatches();
+        save();
+    }
+
+    /**
+     * Records the chunk of a wide partition still being written and saves the progress. Call this
+     * when reading the source rows stopped early, so applied updates are not applied again by a
+     * rerun. Pending batches have not been executed yet and are left out of the progress.
+     */
+    void close() {
+
+        if(partition != null && partition.wide) {
+            completeWideChunk();
+        }
+        save();
+    }
+
+    /**
+     * Returns the number of partitions that could not be applied.
+     *
+     * @return the number of failed partitions.
+     */
+    int getFailures() {
+        return progress.getFailures();
+    }
+
+    /**
+     * Adds an update to the current partition, skipping updates recorded as applied by a
+     * previous run. A full chunk is written before the next update is added, so only one
+     * chunk of a partition is kept in memory.
+     */
+    private void add(U update) {
+
+        if(update == null || partition.failed || ++partition.seen <= partition.skipped) {
+            return;
+        }
+        if(partition.updates.size() >= BATCH_SIZE) {
+            executeWideChunk();
+        }
+        if(!partition.failed) {
+            partition.updates.add(update);
+        }
+    }
+
+    /**
+     * Queues the current partition once all of its rows have been added. Partitions that fit into
+     * one batch are executed asynchronously together with other pending partitions. Partitions
+     * without updates are recorded in order with the pending ones. Wide partitions have already
+     * been written chunk by chunk and only their last chunk is left.
+     */
+    private void finishPartition() {
+
+        if(partition.wide) {
+            if(!partition.updates.isEmpty()) {
+                executeWideChunk();
+            }
+            if(completeWideChunk()) {
+                progress.applied(partition.token);
+                save();
+            }
+            return;
+        }
+
+        if(!partition.alreadyApplied && !partition.updates.isEmpty()) {
+            partition.batch = new ArrayList(partition.updates);
+            partition.updates.clear();
+            pendingBatches++;
+        } else if(pending.isEmpty()) {
+            // Nothing to write and nothing to keep in order with.
+            progress.applied(partition.token);
+            return;
+        }
+        pending.add(partition);
+
+        if(pendingBatches >= BATCHES_IN_FLIGHT || pending.size() >= PARTITIONS_PENDING) {
+            executeBatches();
+        }
+    }
+
+    /**
+     * Writes the full chunk of updates of a wide partition. The chunk is executed asynchronously
+     * once the previous chunk of the partition has been applied, so reading the next rows overlaps
+     * with writing.
+     */
+    private void executeWideChunk() {
+
+        if(!partition.wide) {
+            // Progress must be recorded in token order, so pending partitions go first.
+            executeBatches();
+            partition.wide = true;
+        }
+        if(!completeWideChunk()) {
+            return;
+        }
+        partition.inFlight = executor.execute(new ArrayList(partition.updates));
+        partition.inFlightSize = partition.updates.size();
+        partition.updates.clear();
+    }
+
+    /**
+     * Waits for the chunk of the current wide partition being written and records it as applied.
+     * The progress is saved every {@link #CHUNKS_PER_SAVE} chunks.
+     *
+     * @return false if the partition failed.
+     */
+    private boolean completeWideChunk() {
+
+        if(partition.inFlight == null) {
+            return !partition.failed;
+        }
+        try {
+            await(partition.inFlight);
+        } catch(Exception e) {
+            System.out.println("Failed to copy counter partition " + partition.token + " of table '" + table + "': " + e.getMessage());
+            partition.failed = true;
+            partition.updates.clear();
+            progress.failed();
+            save();
+            return false;
+        } finally {
+            partition.inFlight = null;
+        }
+        partition.applied += partition.inFlightSize;
+        progress.partiallyApplied(partition.token, partition.applied);
+        if(++partition.unsavedChunks >= CHUNKS_PER_SAVE) {
+            save();
+            partition.unsavedChunks = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Executes the batches of all pending partitions asynchronously, waits for them to complete
+     * and records the applied partitions in scan order.
+     */
+    private void executeBatches() {
+
+        if(pending.isEmpty()) {
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList();
+        pending.forEach(p -> {
+            futures.add(p.batch == null ? null : executor.execute(p.batch));
+        });
+
+        for (int i = 0; i < pending.size(); i++) {
+            Partition<T, U> p = pending.get(i);
+            try {
+                if(futures.get(i) != null) {
+                    await(futures.get(i));
+                }
+                progress.applied(p.token);
+            } catch(Exception e) {
+                System.out.println("Failed to copy counter partition " + p.token + " of table '" + table + "': " + e.getMessage());
+                progress.failed();
+            }
+        }
+        boolean executed = pendingBatches > 0;
+        pending.clear();
+        pendingBatches = 0;
+        if(executed) {
+            save();
+        }
+    }
+
+    private void save() {
+        if(progress.isChanged()) {
+            saver.run();
+            progress.saved();
+        }
+    }
+
+    private static void await(Future<?> future) throws Exception {
+        try {
+            Uninterruptibles.getUninterruptibly(future);
+        } catch(ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+        }
+    }
+
+    /**
+     * A source partition together with the updates needed to copy it. Only the updates of the
+     * current chunk are kept in memory.
+     */
+    private static class Partition<T, U> {
+
+        private final T token;
+        private final List<Object> key;
+        private final boolean alreadyApplied;
+        private final int skipped;
+        private final List<U> updates = new ArrayList();
+        private List<U> batch;
+        private int seen;
+        private int applied;
+        private boolean wide;
+        private boolean failed;
+        private Future<?> inFlight;
+        private int inFlightSize;
+        private int unsavedChunks;
+
+        private Partition(T token, List<Object> key, boolean alreadyApplied, int skipped) {
+            this.token = token;
+            this.key = key;
+            this.alreadyApplied = alreadyApplied;
+            this.skipped = skipped;
+            this.applied = skipped;
+        }
+
+        private boolean isSamePartition(T token, List<Object> key) {
+            return this.token.equals(token) && Objects.equals(this.key, key);
+        }
+    }
+}
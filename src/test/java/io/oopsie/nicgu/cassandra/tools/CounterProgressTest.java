@@ -0,0 +1,116 @@
+package io.oopsie.nicgu.cassandra.tools;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CounterProgressTest {
+
+    private static CounterProgress<Long> parse(String ranges) {
+        return CounterProgress.parse(ranges, Collections.emptyMap(), Long::valueOf);
+    }
+
+    @Test
+    public void appliedExtendsTheOpenRange() {
+        CounterProgress<Long> progress = parse("");
+        progress.applied(-5L);
+        progress.applied(3L);
+        progress.applied(10L);
+        assertEquals("-5:10", progress.formatRanges());
+        assertTrue(progress.isChanged());
+    }
+
+    @Test
+    public void failedBreaksTheRange() {
+        CounterProgress<Long> progress = parse("");
+        progress.applied(1L);
+        progress.applied(2L);
+        progress.failed();
+        progress.applied(4L);
+        progress.applied(5L);
+        assertEquals("1:2,4:5", progress.formatRanges());
+        assertEquals(1, progress.getFailures());
+        assertFalse(progress.isApplied(3L));
+    }
+
+    @Test
+    public void partiallyAppliedBreaksTheRangeUntilApplied() {
+        CounterProgress<Long> progress = parse("");
+        progress.applied(1L);
+        progress.partiallyApplied(2L, 100);
+        progress.partiallyApplied(2L, 200);
+        assertEquals("1:1", progress.formatRanges());
+        assertEquals(200, progress.getPartiallyApplied(2L));
+        assertFalse(progress.isApplied(2L));
+
+        progress.applied(2L);
+        progress.applied(3L);
+        assertEquals("1:1,2:3", progress.formatRanges());
+        assertEquals(0, progress.getPartiallyApplied(2L));
+        assertTrue(progress.getPartial().isEmpty());
+    }
+
+    @Test
+    public void formatRangesMergesOverlappingRanges() {
+        CounterProgress<Long> progress = parse("20:30,1:5");
+        // A resumed run records skipped partitions again, overlapping the loaded ranges.
+        progress.applied(3L);
+        progress.applied(8L);
+        progress.failed();
+        progress.applied(25L);
+        progress.applied(40L);
+        assertEquals("1:8,20:40", progress.formatRanges());
+    }
+
+    @Test
+    public void isAppliedIncludesBounds() {
+        CounterProgress<Long> progress = parse("-10:-2,7:7");
+        assertFalse(progress.isApplied(-11L));
+        assertTrue(progress.isApplied(-10L));
+        assertTrue(progress.isApplied(-5L));
+        assertTrue(progress.isApplied(-2L));
+        assertFalse(progress.isApplied(-1L));
+        assertFalse(progress.isApplied(6L));
+        assertTrue(progress.isApplied(7L));
+        assertFalse(progress.isApplied(8L));
+    }
+
+    @Test
+    public void parseReadsWhatIsFormatted() {
+        CounterProgress<Long> progress = parse("");
+        progress.applied(1L);
+        progress.applied(9L);
+        progress.partiallyApplied(12L, 300);
+
+        Map<String, String> partial = new HashMap();
+        progress.getPartial().forEach((token, applied) -> partial.put(token.toString(), applied.toString()));
+        CounterProgress<Long> parsed = CounterProgress.parse(progress.formatRanges(), partial, Long::valueOf);
+        assertEquals("1:9", parsed.formatRanges());
+        assertEquals(300, parsed.getPartiallyApplied(12L));
+        assertFalse(parsed.isChanged());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseRejectsTornRange() {
+        parse("1:5,7");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseRejectsInvalidToken() {
+        parse("1:5,7:1x");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseRejectsReversedRange() {
+        parse("5:1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseRejectsInvalidPartialCount() {
+        CounterProgress.parse("", Collections.singletonMap("12", "3x"), Long::valueOf);
+    }
+}
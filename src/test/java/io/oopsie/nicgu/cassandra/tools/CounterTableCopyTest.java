@@ -0,0 +1,277 @@
+package io.oopsie.nicgu.cassandra.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CounterTableCopyTest {
+
+    private final List<List<String>> batches = new ArrayList();
+    private Predicate<List<String>> failing = b -> false;
+    private int saves;
+
+    private CounterTableCopy<Long, String> copy(CounterProgress<Long> progress) {
+        return new CounterTableCopy("t", progress, this::execute, () -> saves++);
+    }
+
+    private Future<?> execute(List<String> updates) {
+        batches.add(updates);
+        CompletableFuture<Void> future = new CompletableFuture();
+        if(failing.test(updates)) {
+            future.completeExceptionally(new IllegalStateException("write failed"));
+        } else {
+            future.complete(null);
+        }
+        return future;
+    }
+
+    private static CounterProgress<Long> progress(String ranges) {
+        return CounterProgress.parse(ranges, Collections.emptyMap(), Long::valueOf);
+    }
+
+    private static void row(CounterTableCopy<Long, String> copy, long token, String key, String update) {
+        copy.row(token, Arrays.asList(key), () -> null, () -> update);
+    }
+
+    private static List<String> updates(String prefix, int from, int to) {
+        List<String> updates = new ArrayList();
+        for (int i = from; i < to; i++) {
+            updates.add(prefix + i);
+        }
+        return updates;
+    }
+
+    @Test
+    public void rowsAreGroupedByTokenAndKey() {
+        CounterProgress<Long> progress = progress("");
+        CounterTableCopy<Long, String> copy = copy(progress);
+        row(copy, 1, "a", "a1");
+        row(copy, 1, "a", "a2");
+        row(copy, 2, "b", "b1");
+        // Same token, different partition key.
+        row(copy, 2, "c", "c1");
+        copy.finish();
+
+        assertEquals(Arrays.asList(Arrays.asList("a1", "a2"), Arrays.asList("b1"), Arrays.asList("c1")), batches);
+        assertEquals("1:2", progress.formatRanges());
+        assertEquals(1, saves);
+    }
+
+    @Test
+    public void staticUpdateIsAppliedOncePerPartition() {
+        CounterProgress<Long> progress = progress("");
+        CounterTableCopy<Long, String> copy = copy(progress);
+        copy.row(1L, Arrays.asList("a"), () -> "s-a", () -> "a1");
+        copy.row(1L, Arrays.asList("a"), () -> "s-a", () -> "a2");
+        // A partition with only a static value has no regular update.
+        copy.row(2L, Arrays.asList("b"), () -> "s-b", () -> null);
+        copy.finish();
+
+        assertEquals(Arrays.asList(Arrays.asList("s-a", "a1", "a2"), Arrays.asList("s-b")), batches);
+        assertEquals("1:2", progress.formatRanges());
+    }
+
+    @Test
+    public void partitionsWithoutUpdatesAreRecordedWithoutBatch() {
+        CounterProgress<Long> progress = progress("");
+        CounterTableCopy<Long, String> copy = copy(progress);
+        row(copy, 1, "a", null);
+        row(copy, 2, "b", "b1");
+        row(copy, 3, "c", null);
+        row(copy, 4, "d", "d1");
+        copy.finish();
+
+        assertEquals(Arrays.asList(Arrays.asList("b1"), Arrays.asList("d1")), batches);
+        assertEquals("1:4", progress.formatRanges());
+        assertEquals(0, copy.getFailures());
+    }
+
+    @Test
+    public void alreadyAppliedPartitionsAreSkipped() {
+        CounterProgress<Long> progress = progress("1:2");
+        CounterTableCopy<Long, String> copy = copy(progress);
+        row(copy, 1, "a", "a1");
+        row(copy, 2, "b", "b1");
+        row(copy, 3, "c", "c1");
+        copy.finish();
+
+        assertEquals(Arrays.asList(Arrays.asList("c1")), batches);
+        assertEquals("1:3", progress.formatRanges());
+    }
+
+    @Test
+    public void failedPartitionBreaksTheRange() {
+        failing = b -> b.contains("b1");
+        CounterProgress<Long> progress = progress("");
+        CounterTableCopy<Long, String> copy = copy(progress);
+        row(copy, 1, "a", "a1");
+        row(copy, 2, "b", "b1");
+        row(copy, 3, "c", "c1");
+        copy.finish();
+
+        assertEquals(3, batches.size());
+        assertEquals("1:1,3:3", progress.formatRanges());
+        assertEquals(1, copy.getFailures());
+        assertFalse(progress.isApplied(2L));
+    }
+
+    @Test
+    public void pendingBatchesAreExecutedInGroups() {
+        CounterProgress<Long> progress = progress("");
+        CounterTableCopy<Long, String> copy = copy(progress);
+        for (int i = 0; i < CounterTableCopy.BATCHES_IN_FLIGHT; i++) {
+            row(copy, i, "k" + i, "u" + i);
+        }
+        // The last partition is only known to be complete once the next one starts.
+        assertEquals(0, batches.size());
+        row(copy, 100, "next", "u");
+        assertEquals(CounterTableCopy.BATCHES_IN_FLIGHT, batches.size());
+        assertEquals(1, saves);
+        copy.finish();
+        assertEquals(CounterTableCopy.BATCHES_IN_FLIGHT + 1, batches.size());
+        assertEquals("0:100", progress.formatRanges());
+    }
+
+    @Test
+    public void skippedPartitionsDoNotSaveProgress() {
+        CounterProgress<Long> progress = progress("0:5000");
+        CounterTableCopy<Long, String> copy = copy(progress);
+        for (int i = 0; i <= 5000; i++) {
+            row(copy, i, "k" + i, "u" + i);
+        }
+        assertEquals(0, saves);
+        copy.finish();
+        assertEquals(0, batches.size());
+        assertEquals(1, saves);
+    }
+
+    @Test
+    public void widePartitionIsWrittenInChunks() {
+        CounterProgress<Long> progress = progress("");
+        CounterTableCopy<Long, String> copy = copy(progress);
+        row(copy, 1, "a", "a");
+        for (String update : updates("w", 0, 250)) {
+            row(copy, 2, "w", update);
+        }
+        // The pending partition goes first, then the full chunks.
+        assertEquals(Arrays.asList("a"), batches.get(0));
+        assertEquals(updates("w", 0, 100), batches.get(1));
+        assertEquals(updates("w", 100, 200), batches.get(2));
+        assertEquals(100, progress.getPartiallyApplied(2L));
+
+        row(copy, 3, "c", "c1");
+        copy.finish();
+        assertEquals(updates("w", 200, 250), batches.get(3));
+        assertEquals(Arrays.asList("c1"), batches.get(4));
+        assertEquals(0, progress.getPartiallyApplied(2L));
+        assertTrue(progress.getPartial().isEmpty());
+        // Recording the wide partition as partly applied started a new range.
+        assertEquals("1:1,2:3", progress.formatRanges());
+    }
+
+    @Test
+    public void widePartitionSavesEveryFewChunks() {
+        CounterProgress<Long> progress = progress("");
+        CounterTableCopy<Long, String> copy = copy(progress);
+        int chunks = CounterTableCopy.CHUNKS_PER_SAVE + 1;
+        for (String update : updates("w", 0, chunks * CounterTableCopy.BATCH_SIZE + 1)) {
+            row(copy, 1, "w", update);
+        }
+        // The last full chunk is still in flight.
+        assertEquals(chunks, batches.size());
+        assertEquals(1, saves);
+        copy.finish();
+        assertEquals(2, saves);
+    }
+
+    @Test
+    public void failedWideChunkStopsThePartition() {
+        failing = b -> b.contains("w150");
+        CounterProgress<Long> progress = progress("");
+        CounterTableCopy<Long, String> copy = copy(progress);
+        for (String update : updates("w", 0, 350)) {
+            row(copy, 1, "w", update);
+        }
+        row(copy, 2, "b", "b1");
+        copy.finish();
+
+        // The third chunk is never written after the second one failed.
+        assertEquals(Arrays.asList(updates("w", 0, 100), updates("w", 100, 200), Arrays.asList("b1")), batches);
+        assertEquals(100, progress.getPartiallyApplied(1L));
+        assertEquals(1, copy.getFailures());
+        assertEquals("2:2", progress.formatRanges());
+    }
+
+    @Test
+    public void partlyAppliedPartitionResumesAfterAppliedUpdates() {
+        Map<String, String> partial = new HashMap();
+        partial.put("1", "150");
+        CounterProgress<Long> progress = CounterProgress.parse("", partial, Long::valueOf);
+        CounterTableCopy<Long, String> copy = copy(progress);
+        // The static update is the first update of the partition and counts towards the offset.
+        copy.row(1L, Arrays.asList("w"), () -> "s", () -> "w0");
+        for (String update : updates("w", 1, 300)) {
+            copy.row(1L, Arrays.asList("w"), () -> "s", () -> update);
+        }
+        copy.finish();
+
+        assertEquals(Arrays.asList(updates("w", 149, 249), updates("w", 249, 300)), batches);
+        assertTrue(progress.getPartial().isEmpty());
+        assertEquals("1:1", progress.formatRanges());
+    }
+
+    @Test
+    public void partlyAppliedPartitionWithNothingLeftIsRecorded() {
+        Map<String, String> partial = new HashMap();
+        partial.put("1", "3");
+        CounterProgress<Long> progress = CounterProgress.parse("", partial, Long::valueOf);
+        CounterTableCopy<Long, String> copy = copy(progress);
+        for (String update : updates("w", 0, 3)) {
+            row(copy, 1, "w", update);
+        }
+        copy.finish();
+
+        assertTrue(batches.isEmpty());
+        assertEquals("1:1", progress.formatRanges());
+        assertTrue(progress.getPartial().isEmpty());
+    }
+
+    @Test
+    public void closeRecordsTheChunkInFlight() {
+        CounterProgress<Long> progress = progress("");
+        CounterTableCopy<Long, String> copy = copy(progress);
+        for (String update : updates("w", 0, 250)) {
+            row(copy, 1, "w", update);
+        }
+        assertEquals(100, progress.getPartiallyApplied(1L));
+        int savesBefore = saves;
+
+        // Reading the source stopped before the partition was complete.
+        copy.close();
+        assertEquals(200, progress.getPartiallyApplied(1L));
+        assertEquals(savesBefore + 1, saves);
+        assertEquals(2, batches.size());
+    }
+
+    @Test
+    public void closeAfterFinishDoesNothing() {
+        CounterProgress<Long> progress = progress("");
+        CounterTableCopy<Long, String> copy = copy(progress);
+        row(copy, 1, "a", "a1");
+        copy.finish();
+        int savesBefore = saves;
+        copy.close();
+        assertEquals(savesBefore, saves);
+        assertEquals(1, batches.size());
+    }
+}